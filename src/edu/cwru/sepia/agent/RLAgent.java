@@ -28,11 +28,36 @@ public class RLAgent extends Agent {
 	private List<Double> averageRewards = new ArrayList<>();
 	private double cumulativeReward = 0;
 
+	/**
+	 * The same rewards computed with the default shaping constants, so runs
+	 * with different unitBonus, hpBonus or turnPenalty can be compared.
+	 */
+	private List<Double> averageEvaluationRewards = new ArrayList<>();
+	private double cumulativeEvaluationReward = 0;
+
 	/**
 	 * Cached values from the last execution to use this turn when updating the weights function
 	 */
 	private Map<Integer, Double> lastReward = new HashMap<>();
 	private Map<Integer, double[]> lastFeatureVector = new HashMap<>();
+	private Map<Integer, Integer> lastTarget = new HashMap<>();
+
+	/**
+	 * Per turn time budget for choosing actions, 0 for no limit. Units not
+	 * reached before the deadline keep their previous target or attack the
+	 * closest enemy.
+	 */
+	private final long turnBudgetNanos;
+	private int budgetOverruns = 0;
+
+	/**
+	 * The weakest enemy only changes between turns, so it is found once per
+	 * turn instead of once per feature vector.
+	 */
+	private int weakestEnemyTurn = -1;
+	private int weakestEnemy;
+	private int unitsDeferred = 0;
+	private long slowestTurnNanos = 0;
 
 	/**
 	 * Set in the constructor. Defines how many learning episodes your agent should run for.
@@ -71,7 +96,7 @@ public class RLAgent extends Agent {
 	public static final int FIRST_ENEMY_FEATURE = 5;
 
 
-	public final Random random = new Random();
+	public final Random random;
 
 	/**
 	 * Your Q-function weights.
@@ -83,17 +108,75 @@ public class RLAgent extends Agent {
 	 * but it is not recommended. If you do change them please let us know and explain your reasoning for
 	 * changing them.
 	 */
-	public final double gamma = 0.9;			// discount factor
-	public final double learningRate = .0001;
-	public final double epsilon = .02;
+	public final double gamma;			// discount factor
+	public final double learningRate;
+	public final double epsilon;
+
+	private final double UNIT_BONUS;
+	private final double HP_BONUS;
+	private final double TURN_PENALTY; // TODO: Why is this not used?
+
+	private static final double DEFAULT_UNIT_BONUS = 100.0;
+	private static final double DEFAULT_HP_BONUS = 1.0;
+	private static final double DEFAULT_TURN_PENALTY = 0.1;
+
+	/**
+	 * Indices into a footman's damage tally.
+	 */
+	private static final int DAMAGE_DEALT = 0;
+	private static final int KILLS = 1;
+	private static final int DAMAGE_TAKEN = 2;
+	private static final int[] NO_DAMAGE = new int[3];
+
+	/**
+	 * Optional weights shared with other SEPIA processes through a memory
+	 * mapped file. When set, weights is refreshed from it every turn and
+	 * weight updates are added to it.
+	 */
+	private transient SharedWeights sharedWeights;
+	private File sharedWeightsPath;
+	private int episodesPerSnapshot;
+
+	/**
+	 * Where the CSV and summary go. Workers sharing weights usually run from
+	 * the same directory, so each one writes to its own subdirectory.
+	 */
+	private String outputDirectory = "agent_weights";
 
-	private final double UNIT_BONUS = 100.0;
-	private final double HP_BONUS = 1.0;
-	private final double TURN_PENALTY = 0.1; // TODO: Why is this not used?
+	/**
+	 * Wall clock time the agent was created at, used to report episodes per
+	 * second once the run is over.
+	 */
+	private final long startTime = System.nanoTime();
 
+	/**
+	 * Arguments after the first two are optional name=value pairs which
+	 * override the hyperparameters above, for example gamma=0.95 or seed=42.
+	 * Recognized names are gamma, learningRate, epsilon, unitBonus, hpBonus,
+	 * turnPenalty and seed.
+	 * 
+	 * sharedWeights=path trains against a weight file shared by every worker
+	 * given the same path, and snapshotEvery=N (default 100) writes a
+	 * consistent copy of it to agent_weights/weights.txt every N episodes,
+	 * in the format loadWeights reads, with its version in
+	 * agent_weights/weights.txt.version. In that mode the CSV and summary go
+	 * to agent_weights/worker-<pid>.
+	 * 
+	 * turnBudget=N limits each turn to N microseconds of decision making.
+	 */
 	public RLAgent(int playernum, String[] args) {
 		super(playernum);
 
+		Map<String, String> options = parseOptions(args, 2);
+		gamma        = Double.parseDouble(options.getOrDefault("gamma", "0.9"));
+		learningRate = Double.parseDouble(options.getOrDefault("learningRate", ".0001"));
+		epsilon      = Double.parseDouble(options.getOrDefault("epsilon", ".02"));
+		UNIT_BONUS   = Double.parseDouble(options.getOrDefault("unitBonus", Double.toString(DEFAULT_UNIT_BONUS)));
+		HP_BONUS     = Double.parseDouble(options.getOrDefault("hpBonus", Double.toString(DEFAULT_HP_BONUS)));
+		TURN_PENALTY = Double.parseDouble(options.getOrDefault("turnPenalty", Double.toString(DEFAULT_TURN_PENALTY)));
+		turnBudgetNanos = Long.parseLong(options.getOrDefault("turnBudget", "0")) * 1000;
+		random = options.containsKey("seed") ? new Random(Long.parseLong(options.get("seed"))) : new Random();
+
 		if (args.length >= 1) {
 			numEpisodes = Integer.parseInt(args[0]);
 			System.out.println("Running " + numEpisodes + " episodes.");
@@ -118,6 +201,40 @@ public class RLAgent extends Agent {
 				weights[i] = random.nextDouble() * 2 - 1;
 			}
 		}
+
+		if (options.containsKey("sharedWeights")) {
+			sharedWeightsPath = new File(options.get("sharedWeights"));
+			episodesPerSnapshot = Math.max(1, Integer.parseInt(options.getOrDefault("snapshotEvery", "100")));
+			try {
+				sharedWeights = SharedWeights.open(sharedWeightsPath, weights);
+				weights = sharedWeights.read();
+				outputDirectory = "agent_weights/worker-" + ProcessHandle.current().pid();
+				System.out.println("Sharing weights through " + sharedWeightsPath + " at version " + sharedWeights.version());
+			} catch (IOException ex) {
+				System.err.println("Failed to open shared weights. Training with local weights. Reason: " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Collects name=value arguments starting at the given index. Arguments
+	 * without an equals sign are ignored with a warning.
+	 * 
+	 * @param args
+	 * @param start
+	 * @return
+	 */
+	private static Map<String, String> parseOptions(String[] args, int start) {
+		Map<String, String> options = new HashMap<>();
+		for (int i = start; i < args.length; i++) {
+			int split = args[i].indexOf('=');
+			if (split < 0) {
+				System.err.println("Warning! Ignoring malformed argument " + args[i]);
+				continue;
+			}
+			options.put(args[i].substring(0, split).trim(), args[i].substring(split + 1).trim());
+		}
+		return options;
 	}
 
 	/**
@@ -139,6 +256,9 @@ public class RLAgent extends Agent {
 				.collect(Collectors.toList());
 
 		cumulativeReward = 0.0;
+		cumulativeEvaluationReward = 0.0;
+		lastTarget.clear();
+		weakestEnemyTurn = -1;
 
 		return middleStep(stateView, historyView);
 	}
@@ -154,44 +274,137 @@ public class RLAgent extends Agent {
 	 */
 	@Override
 	public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+		long turnStart = System.nanoTime();
 		Map<Integer, Action> actionMap = new HashMap<>();
 		double stateReward = 0.0;
 		boolean unitDidDie = updateUnitLists(historyView, stateView); // Important to check this after we calculate the state reward.
 		Map<Integer, Double> nextLastReward = new HashMap<>();
 
-		// Calculate the reward of this state.
+		// Pick up updates made by other workers
+		if (sharedWeights != null) {
+			weights = sharedWeights.read();
+		}
+
+		// Calculate the reward of this state. The evaluation reward is only kept for episodes
+		// whose rewards are recorded, and is the same as the reward under the default shaping.
+		Map<Integer, int[]> damage = tallyDamage(stateView, historyView);
+		boolean evaluate = isRecordedEpisode();
+		boolean defaultShaping = UNIT_BONUS == DEFAULT_UNIT_BONUS && HP_BONUS == DEFAULT_HP_BONUS
+				&& TURN_PENALTY == DEFAULT_TURN_PENALTY;
 		for (int friendlyUnit : myFootmen) {
-			stateReward += calculateReward(stateView, historyView, friendlyUnit);
-			nextLastReward.put(friendlyUnit, calculateReward(stateView, historyView, friendlyUnit));
+			int[] tally = damage.getOrDefault(friendlyUnit, NO_DAMAGE);
+			double reward = calculateReward(stateView, friendlyUnit, tally, UNIT_BONUS, HP_BONUS, TURN_PENALTY);
+			stateReward += reward;
+			nextLastReward.put(friendlyUnit, reward);
+			if (evaluate) {
+				cumulativeEvaluationReward += defaultShaping ? reward : calculateReward(stateView, friendlyUnit, tally,
+						DEFAULT_UNIT_BONUS, DEFAULT_HP_BONUS, DEFAULT_TURN_PENALTY);
+			}
 		}
 
 		// Update the weights for this turn if the units received feedback and we're not testing.
+		// Every update starts from the old weights and replaces the last one, so only the update
+		// for the last unit with a feature vector survives. Compute just that one.
 		double[] oldWeights = weights.clone();
-		for(int friendlyUnit: myFootmen) {
-			if (stateView.getTurnNumber() != 0 && !testingEpisode && actionCompleted(historyView, stateView)) {
-				weights = updateWeights(oldWeights, lastFeatureVector.get(friendlyUnit), lastReward.get(friendlyUnit), stateView, historyView, friendlyUnit);
+		boolean weightsUpdated = false;
+		if (stateView.getTurnNumber() != 0 && !testingEpisode && actionCompleted(historyView, stateView)) {
+			for (int i = myFootmen.size() - 1; i >= 0; i--) {
+				int friendlyUnit = myFootmen.get(i);
+				if (lastFeatureVector.containsKey(friendlyUnit)) {
+					weights = updateWeights(oldWeights, lastFeatureVector.get(friendlyUnit), lastReward.get(friendlyUnit), stateView, historyView, friendlyUnit);
+					weightsUpdated = true;
+					break;
+				}
 			}
 		}
 
+		// Publish this turn's change rather than the whole vector so concurrent updates are not lost
+		if (sharedWeights != null && weightsUpdated) {
+			double[] delta = new double[weights.length];
+			for (int i = 0; i < weights.length; i++) {
+				delta[i] = weights[i] - oldWeights[i];
+			}
+			sharedWeights.add(delta);
+		}
+
 		lastReward = nextLastReward; // store for posterity
 
 		// Issue new commands if a significant event occurred
 		// TODO: Probably add more feature vectors here.
 		if(stateView.getTurnNumber() == 0 || unitDidDie || actionCompleted(historyView, stateView) || friendlyDamageTaken(historyView, stateView)) {
 			// Update the weights of our feature vectors
-			for (int friendlyUnit : myFootmen) {
-				int enemyTarget = selectAction(stateView, historyView, friendlyUnit);
-				lastFeatureVector.put(friendlyUnit, calculateFeatureVector(stateView, historyView, friendlyUnit, enemyTarget));
+			List<Integer> units = turnBudgetNanos > 0 ? prioritizeUnits(stateView) : myFootmen;
+			for (int friendlyUnit : units) {
+				int enemyTarget;
+				if (turnBudgetNanos > 0 && System.nanoTime() - turnStart >= turnBudgetNanos) {
+					// Out of time, so this unit does not contribute to learning next turn
+					enemyTarget = fallbackTarget(stateView, friendlyUnit);
+					lastFeatureVector.remove(friendlyUnit);
+					unitsDeferred++;
+				} else {
+					enemyTarget = selectAction(stateView, historyView, friendlyUnit);
+					lastFeatureVector.put(friendlyUnit, calculateFeatureVector(stateView, historyView, friendlyUnit, enemyTarget));
+				}
+				lastTarget.put(friendlyUnit, enemyTarget);
 				actionMap.put(friendlyUnit, Action.createCompoundAttack(friendlyUnit, enemyTarget));
 			}
 		}
 
+		long turnTime = System.nanoTime() - turnStart;
+		slowestTurnNanos = Math.max(slowestTurnNanos, turnTime);
+		if (turnBudgetNanos > 0 && turnTime > turnBudgetNanos) {
+			budgetOverruns++;
+		}
+
 		cumulativeReward += stateReward;
 
 		return actionMap;
 	}
 
 
+	/**
+	 * Orders our units for deadline limited action selection: units without
+	 * a living target first, then damaged units, then the rest.
+	 * 
+	 * @param stateView
+	 * @return
+	 */
+	private List<Integer> prioritizeUnits(State.StateView stateView) {
+		List<Integer> idle = new ArrayList<>();
+		List<Integer> damaged = new ArrayList<>();
+		List<Integer> rest = new ArrayList<>();
+		for (int friendlyUnit : myFootmen) {
+			Integer target = lastTarget.get(friendlyUnit);
+			UnitView unit = stateView.getUnit(friendlyUnit);
+			if (target == null || stateView.getUnit(target) == null) {
+				idle.add(friendlyUnit);
+			} else if (unit.getHP() < unit.getTemplateView().getBaseHealth()) {
+				damaged.add(friendlyUnit);
+			} else {
+				rest.add(friendlyUnit);
+			}
+		}
+		idle.addAll(damaged);
+		idle.addAll(rest);
+		return idle;
+	}
+
+	/**
+	 * Cheap target for a unit the turn budget did not reach: its previous
+	 * target if that enemy is still alive, otherwise the closest enemy.
+	 * 
+	 * @param stateView
+	 * @param attackerId
+	 * @return
+	 */
+	private int fallbackTarget(State.StateView stateView, int attackerId) {
+		Integer target = lastTarget.get(attackerId);
+		if (target != null && stateView.getUnit(target) != null) {
+			return target;
+		}
+		return getClosestEnemy(stateView, attackerId);
+	}
+
 	/**
 	 * Quickly corrects the unit lists for any newly dead and returns if any units have died.
 	 *
@@ -247,7 +460,7 @@ public class RLAgent extends Agent {
 	public void terminalStep(StateView stateView, HistoryView historyView) {
 		totalEpisodes++;
 
-		if(episodeNumber % TURNS_BETWEEN_TESTING == 0 && NUMBER_OF_TEST_RUNS > testsCompleted) {
+		if(isRecordedEpisode()) {
 			// Do testing episode
 			testsCompleted ++;
 			testingEpisode = true;
@@ -261,6 +474,11 @@ public class RLAgent extends Agent {
 				averageRewards.add(arrayIndex, currentValue);
 			}
 			averageRewards.set(arrayIndex, currentValue + cumulativeReward * .2);
+
+			if (averageEvaluationRewards.size() <= arrayIndex) {
+				averageEvaluationRewards.add(arrayIndex, 0.0);
+			}
+			averageEvaluationRewards.set(arrayIndex, averageEvaluationRewards.get(arrayIndex) + cumulativeEvaluationReward * .2);
 		} else {
 			testingEpisode = false;
 			// Do learning episode
@@ -274,15 +492,25 @@ public class RLAgent extends Agent {
 			losses ++;
 		}
 
-		// Save your weights
-		saveWeights(weights);
+		// Save your weights. Shared weights are saved as a consistent snapshot instead, since
+		// every worker would otherwise overwrite the weights file with a half-updated copy.
+		if (sharedWeights == null) {
+			saveWeights(weights);
+		} else if (totalEpisodes % episodesPerSnapshot == 0) {
+			sharedWeights.writeSnapshot(new File("agent_weights/weights.txt"));
+		}
 		
-		if (totalEpisodes >= 10001) {
+		if (totalEpisodes >= numEpisodes) {
 			System.out.println("Wins: ");
 			System.out.println(wins);
 			System.out.println("Losses: ");
 			System.out.println(losses);
+			if (turnBudgetNanos > 0) {
+				System.out.println(String.format("Turns over budget: %d, units deferred: %d, slowest turn: %d us",
+						budgetOverruns, unitsDeferred, slowestTurnNanos / 1000));
+			}
 			outputCSV(averageRewards);
+			outputSummary();
 			printTestData(averageRewards);
 			System.exit(0);
 		}
@@ -303,12 +531,16 @@ public class RLAgent extends Agent {
 	public double[] updateWeights(double[] oldWeights, double[] oldFeatures, double totalReward, StateView stateView, HistoryView historyView, int footmanId) {
 		// TODO : Why is there a totalRewards input to this function?
 
+		// Both terms are the same for every weight
+		double bestQValue = getBestQValue(stateView, historyView, footmanId);
+		double currentQValue = dotProduct(oldFeatures, oldWeights);
+
 		double[] newWeights = new double[oldWeights.length];
 		for (int i = 0; i < oldWeights.length; i++) {
 			newWeights[i] = oldWeights[i];
 			newWeights[i] += learningRate * oldFeatures[i] * totalReward; // Reward addition
-			newWeights[i] += learningRate * oldFeatures[i] * gamma * getBestQValue(stateView, historyView, footmanId); // Best next reward addition
-			newWeights[i] -= learningRate * oldFeatures[i] * dotProduct(oldFeatures, oldWeights); // Current value
+			newWeights[i] += learningRate * oldFeatures[i] * gamma * bestQValue; // Best next reward addition
+			newWeights[i] -= learningRate * oldFeatures[i] * currentQValue; // Current value
 		}
 
 		return newWeights;
@@ -372,9 +604,10 @@ public class RLAgent extends Agent {
 	public int selectBestEnemy(StateView stateView, HistoryView historyView, int attackerId) {
 		int bestEnemy = -1;
 		double bestQ = Double.NEGATIVE_INFINITY;
+		int closestEnemy = getClosestEnemy(stateView, attackerId);
 
 		for (int enemy : enemyFootmen) {
-			double temp = calcQValue(stateView, historyView, attackerId, enemy);
+			double temp = dotProduct(weights, calculateFeatureVector(stateView, historyView, attackerId, enemy, closestEnemy));
 			if (temp > bestQ) {
 				bestQ = temp;
 				bestEnemy = enemy;
@@ -394,25 +627,54 @@ public class RLAgent extends Agent {
 	 * @return
 	 */
 	public double calculateReward(StateView stateView, HistoryView historyView, int footmanId) {
+		int[] tally = tallyDamage(stateView, historyView).getOrDefault(footmanId, NO_DAMAGE);
+		return calculateReward(stateView, footmanId, tally, UNIT_BONUS, HP_BONUS, TURN_PENALTY);
+	}
+
+	/**
+	 * Computes the reward for an individual footman from its damage tally
+	 * with the given shaping constants.
+	 */
+	private double calculateReward(StateView stateView, int footmanId, int[] tally,
+			double unitBonus, double hpBonus, double turnPenalty) {
 
-		double reward = TURN_PENALTY;
+		double reward = turnPenalty;
 		if (stateView.getUnit(footmanId) == null) {
-			reward -= UNIT_BONUS;
+			reward -= unitBonus;
 		}
+		reward += tally[DAMAGE_DEALT] * hpBonus;
+		reward += tally[KILLS] * unitBonus;
+		reward -= tally[DAMAGE_TAKEN] * hpBonus;
+		return reward;
+	}
+
+	/**
+	 * Damage dealt, enemies killed and damage taken by every unit last turn,
+	 * from a single pass over the damage logs.
+	 */
+	private Map<Integer, int[]> tallyDamage(StateView stateView, HistoryView historyView) {
+		Map<Integer, int[]> tallies = new HashMap<>();
 
 		// Check the damage logs to figure out if anyone died/was injured
 		for (DamageLog log : historyView.getDamageLogs(stateView.getTurnNumber() - 1)) {
-			if (log.getAttackerID() == footmanId) {
-				reward += log.getDamage() * HP_BONUS;
-
-				if (stateView.getUnit(log.getDefenderID()) == null) {
-					reward += UNIT_BONUS;
-				}
-			} else if (log.getDefenderID() == footmanId) {
-				reward -= log.getDamage() * HP_BONUS;
+			int[] attacker = tallies.computeIfAbsent(log.getAttackerID(), id -> new int[3]);
+			attacker[DAMAGE_DEALT] += log.getDamage();
+			if (stateView.getUnit(log.getDefenderID()) == null) {
+				attacker[KILLS]++;
+			}
+			if (log.getDefenderID() != log.getAttackerID()) {
+				tallies.computeIfAbsent(log.getDefenderID(), id -> new int[3])[DAMAGE_TAKEN] += log.getDamage();
 			}
 		}
-		return reward;
+		return tallies;
+	}
+
+	/**
+	 * Whether the episode in progress is one of the test runs whose rewards
+	 * are recorded when it ends.
+	 */
+	private boolean isRecordedEpisode() {
+		return episodeNumber % TURNS_BETWEEN_TESTING == 0 && NUMBER_OF_TEST_RUNS > testsCompleted;
 	}
 
 
@@ -451,15 +713,27 @@ public class RLAgent extends Agent {
 			HistoryView historyView,
 			int attackerId,
 			int defenderId) {
+		return calculateFeatureVector(stateView, historyView, attackerId, defenderId, getClosestEnemy(stateView, attackerId));
+	}
+
+	/**
+	 * Computes the feature vector with the attacker's closest enemy already
+	 * known, so scoring every enemy for one attacker stays linear.
+	 */
+	private double[] calculateFeatureVector(StateView stateView,
+			HistoryView historyView,
+			int attackerId,
+			int defenderId,
+			int closestEnemy) {
 
 		double[] features = new double[NUM_FEATURES];
-		if (defenderId == getClosestEnemy(stateView, attackerId)) {
+		if (defenderId == closestEnemy) {
 			features[CLOSEST_ENEMY_FEATURE] = 1;
 		} else {
 			features[CLOSEST_ENEMY_FEATURE] = 0;
 		}
 
-		if (defenderId == getWeakestEnemy(stateView)) {
+		if (defenderId == getWeakestEnemyThisTurn(stateView)) {
 			features[WEAKEST_ENEMY_FEATURE] = 1;
 		} else {
 			features[WEAKEST_ENEMY_FEATURE] = 0;
@@ -523,12 +797,27 @@ public class RLAgent extends Agent {
 		return id;
 	}
 
+	/**
+	 * Returns getWeakestEnemy for the current turn, computing it at most once
+	 * per turn.
+	 * 
+	 * @param stateView
+	 * @return
+	 */
+	private int getWeakestEnemyThisTurn(StateView stateView) {
+		if (weakestEnemyTurn != stateView.getTurnNumber()) {
+			weakestEnemy = getWeakestEnemy(stateView);
+			weakestEnemyTurn = stateView.getTurnNumber();
+		}
+		return weakestEnemy;
+	}
+
 	/**
 	 * Writes data to CSV file with comma seperated values.
 	 * @param averageRewards
 	 */
 	public void outputCSV(List<Double> averageRewards) {
-		File path = new File("agent_weights/data.txt");
+		File path = new File(outputDirectory, "data.txt");
 		// create the directories if they do not already exist
 		path.getAbsoluteFile().getParentFile().mkdirs();
 
@@ -541,6 +830,39 @@ public class RLAgent extends Agent {
 			System.err.println("Failed to write weights to file. Reason: " + ex.getMessage());
 		}
 	}
+
+	/**
+	 * Writes the outcome of the whole run as name=value lines so that the
+	 * sweep runner can rank configurations without scraping standard out.
+	 */
+	public void outputSummary() {
+		File path = new File(outputDirectory, "summary.txt");
+		// create the directories if they do not already exist
+		path.getAbsoluteFile().getParentFile().mkdirs();
+
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		double finalReward = averageRewards.isEmpty() ? Double.NaN : averageRewards.get(averageRewards.size() - 1);
+		double evaluationReward = averageEvaluationRewards.isEmpty() ? Double.NaN
+				: averageEvaluationRewards.get(averageEvaluationRewards.size() - 1);
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(path, false))) {
+			// Locale.ROOT so the sweep runner can parse the numbers back whatever the default locale is
+			writer.write(String.format(Locale.ROOT, "episodes=%d\n", totalEpisodes));
+			writer.write(String.format(Locale.ROOT, "wins=%d\n", wins));
+			writer.write(String.format(Locale.ROOT, "losses=%d\n", losses));
+			writer.write(String.format(Locale.ROOT, "finalReward=%f\n", finalReward));
+			writer.write(String.format(Locale.ROOT, "evaluationReward=%f\n", evaluationReward));
+			writer.write(String.format(Locale.ROOT, "winRate=%f\n", (double) wins / Math.max(1, wins + losses)));
+			writer.write(String.format(Locale.ROOT, "episodesPerSecond=%f\n", totalEpisodes / Math.max(seconds, 1e-9)));
+			writer.write(String.format(Locale.ROOT, "budgetOverruns=%d\n", budgetOverruns));
+			writer.write(String.format(Locale.ROOT, "unitsDeferred=%d\n", unitsDeferred));
+			writer.write(String.format(Locale.ROOT, "slowestTurnMicros=%d\n", slowestTurnNanos / 1000));
+			writer.flush();
+		} catch(IOException ex) {
+			System.err.println("Failed to write summary to file. Reason: " + ex.getMessage());
+		}
+	}
+
 	/**
 	 * DO NOT CHANGE THIS!
 	 *
@@ -0,0 +1,367 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Generates footmen versus footmen maps of any size along with a matching
+ * configuration, for example data/rl_50fv50f.xml and data/50fv50fConfig.xml.
+ *
+ * Arguments are name=value pairs:
+ *
+ * friendly  number of our footmen (5)
+ * enemy     number of enemy footmen (same as friendly)
+ * formation line, grid, wedge or scatter (grid)
+ * seed      seed for scatter placement (0)
+ * spacing   tiles between neighbouring units (2)
+ * gap       tiles between the two armies (10)
+ * templates map to take the unit templates from (data/rl_5fv5f.xml)
+ * config    configuration to copy (data/5fv5fConfig.xml)
+ * output    directory to write to (data)
+ *
+ * The template map is streamed through with its units replaced, so the
+ * generated map keeps the same templates, resources and formatting as the
+ * hand written ones.
+ */
+public class ScenarioGenerator {
+
+	private static final String INDENT = "        ";
+
+	public enum Formation {
+		LINE, GRID, WEDGE, SCATTER
+	}
+
+	private final int friendly;
+	private final int enemy;
+	private final Formation formation;
+	private final Random random;
+	private final int spacing;
+	private final int gap;
+	private final File templates;
+	private final File config;
+	private final File output;
+
+	public ScenarioGenerator(Map<String, String> options) {
+		friendly  = Integer.parseInt(options.getOrDefault("friendly", "5"));
+		enemy     = Integer.parseInt(options.getOrDefault("enemy", Integer.toString(friendly)));
+		formation = Formation.valueOf(options.getOrDefault("formation", "grid").toUpperCase());
+		random    = new Random(Long.parseLong(options.getOrDefault("seed", "0")));
+		spacing   = Math.max(1, Integer.parseInt(options.getOrDefault("spacing", "2")));
+		gap       = Math.max(1, Integer.parseInt(options.getOrDefault("gap", "10")));
+		templates = new File(options.getOrDefault("templates", "data/rl_5fv5f.xml"));
+		config    = new File(options.getOrDefault("config", "data/5fv5fConfig.xml"));
+		output    = new File(options.getOrDefault("output", "data"));
+	}
+
+	/**
+	 * Lays out count units in the chosen formation as offsets from the top
+	 * left corner of the formation.
+	 *
+	 * @param count
+	 * @return
+	 */
+	public List<int[]> layout(int count) {
+		List<int[]> positions = new ArrayList<>();
+		switch (formation) {
+		case LINE:
+			for (int i = 0; i < count; i++) {
+				positions.add(new int[] { 0, i * spacing });
+			}
+			break;
+		case GRID:
+			int rows = (int) Math.ceil(Math.sqrt(count));
+			for (int i = 0; i < count; i++) {
+				positions.add(new int[] { (i / rows) * spacing, (i % rows) * spacing });
+			}
+			break;
+		case WEDGE:
+			// row r of the wedge holds 2r + 1 units centered on the tip, which faces the enemy
+			for (int r = 0, placed = 0; placed < count; r++) {
+				for (int j = -r; j <= r && placed < count; j++, placed++) {
+					positions.add(new int[] { r * spacing, j * spacing });
+				}
+			}
+			break;
+		case SCATTER:
+			// random distinct cells in a square with room for twice as many units
+			int side = (int) Math.ceil(Math.sqrt(2.0 * count));
+			List<Integer> cells = new ArrayList<>();
+			for (int i = 0; i < side * side; i++) {
+				cells.add(i);
+			}
+			Collections.shuffle(cells, random);
+			for (int i = 0; i < count; i++) {
+				positions.add(new int[] { (cells.get(i) / side) * spacing, (cells.get(i) % side) * spacing });
+			}
+			break;
+		}
+		return normalize(positions, formation == Formation.WEDGE);
+	}
+
+	/**
+	 * Shifts the positions so the formation starts at (0, 0), optionally
+	 * flipping it so that it faces the other way along x.
+	 */
+	private static List<int[]> normalize(List<int[]> positions, boolean flip) {
+		int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE;
+		for (int[] position : positions) {
+			minX = Math.min(minX, position[0]);
+			maxX = Math.max(maxX, position[0]);
+			minY = Math.min(minY, position[1]);
+		}
+		for (int[] position : positions) {
+			position[0] = flip ? maxX - position[0] : position[0] - minX;
+			position[1] -= minY;
+		}
+		return positions;
+	}
+
+	/**
+	 * Writes the map and configuration.
+	 *
+	 * @return The generated map file
+	 * @throws IOException
+	 */
+	public File generate() throws IOException {
+		String name = String.format("%dfv%df", friendly, enemy);
+		File mapFile = new File(output, "rl_" + name + ".xml");
+		File configFile = new File(output, name + "Config.xml");
+		output.mkdirs();
+
+		StreamingMapLoader.MapInfo source = StreamingMapLoader.load(templates);
+		List<int[]> ours = layout(friendly);
+		List<int[]> theirs = layout(enemy);
+
+		int ourWidth = extent(ours, 0);
+		int theirWidth = extent(theirs, 0);
+		int height = Math.max(extent(ours, 1), extent(theirs, 1));
+		int margin = 3;
+		int xExtent = Math.max(source.xExtent, 2 * margin + ourWidth + gap + theirWidth);
+		int yExtent = Math.max(source.yExtent, 2 * margin + height);
+
+		// our army on the left, the enemy mirrored on the right, both centered vertically
+		Map<Integer, List<int[]>> armies = new HashMap<>();
+		armies.put(0, place(ours, margin, (yExtent - extent(ours, 1)) / 2, false, ourWidth));
+		armies.put(RLAgent.ENEMY_PLAYERNUM,
+				place(theirs, xExtent - margin - theirWidth, (yExtent - extent(theirs, 1)) / 2, true, theirWidth));
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mapFile))) {
+			writeMap(source, armies, xExtent, yExtent, out);
+		}
+		writeConfig(mapFile, configFile);
+
+		System.out.println(String.format("Wrote %s (%dx%d) and %s", mapFile, xExtent, yExtent, configFile));
+		return mapFile;
+	}
+
+	private static int extent(List<int[]> positions, int axis) {
+		int max = 0;
+		for (int[] position : positions) {
+			max = Math.max(max, position[axis]);
+		}
+		return max + 1;
+	}
+
+	private static List<int[]> place(List<int[]> offsets, int x, int y, boolean mirror, int width) {
+		List<int[]> positions = new ArrayList<>();
+		for (int[] offset : offsets) {
+			int dx = mirror ? width - 1 - offset[0] : offset[0];
+			positions.add(new int[] { x + dx, y + offset[1] });
+		}
+		return positions;
+	}
+
+	/**
+	 * Streams the template map to out, replacing the extents, next target ID
+	 * and each player's units.
+	 */
+	private void writeMap(StreamingMapLoader.MapInfo source, Map<Integer, List<int[]>> armies,
+			int xExtent, int yExtent, OutputStream out) throws IOException {
+		XMLEventFactory events = XMLEventFactory.newInstance();
+		XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(templates))) {
+			XMLEventReader reader = inputFactory.createXMLEventReader(in);
+			XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+
+			int depth = 0;
+			int nextId = 0;
+			int skipDepth = -1;
+			boolean unitsWritten = false;
+			StreamingMapLoader.PlayerInfo player = null;
+			List<XMLEvent> whitespace = new ArrayList<>();
+
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+
+				if (skipDepth >= 0) {
+					// inside a unit from the template map
+					if (event.isStartElement()) {
+						depth++;
+					} else if (event.isEndElement() && --depth == skipDepth) {
+						skipDepth = -1;
+					}
+					continue;
+				}
+
+				if (event.isCharacters() && event.asCharacters().isWhiteSpace()) {
+					whitespace.add(event);
+					continue;
+				}
+
+				if (event.isStartElement()) {
+					StartElement start = event.asStartElement();
+					String name = start.getName().getLocalPart();
+
+					if (depth == 1 && name.equals("player")) {
+						player = null;
+						unitsWritten = false;
+					} else if (depth == 2 && name.equals("unit")) {
+						// drop the unit along with the whitespace in front of it
+						whitespace.clear();
+						skipDepth = depth++;
+						continue;
+					} else if (depth == 2 && player != null && !unitsWritten) {
+						nextId = writeUnits(writer, events, player, armies.get(player.id), nextId);
+						unitsWritten = true;
+					}
+
+					if (depth == 0 && name.equals("state")) {
+						event = events.createStartElement(start.getName(),
+								stateAttributes(start, events, xExtent, yExtent, armies), start.getNamespaces());
+					}
+					depth++;
+				} else if (event.isEndElement()) {
+					depth--;
+					if (depth == 1 && player != null && !unitsWritten) {
+						nextId = writeUnits(writer, events, player, armies.get(player.id), nextId);
+						unitsWritten = true;
+					}
+				}
+
+				for (XMLEvent space : whitespace) {
+					writer.add(space);
+				}
+				whitespace.clear();
+				writer.add(event);
+				if (event.isStartDocument()) {
+					writer.add(events.createCharacters("\n"));
+				}
+
+				// the player ID comes before the units, so look the player up once it has been read
+				if (event.isCharacters() && depth == 3 && player == null) {
+					player = source.getPlayer(Integer.parseInt(event.asCharacters().getData().trim()));
+				}
+			}
+			for (XMLEvent space : whitespace) {
+				writer.add(space);
+			}
+			writer.flush();
+			writer.close();
+			reader.close();
+		} catch (XMLStreamException | NumberFormatException ex) {
+			throw new IOException("Failed to generate map. Reason: " + ex.getMessage(), ex);
+		}
+	}
+
+	private Iterator<Attribute> stateAttributes(StartElement start, XMLEventFactory events,
+			int xExtent, int yExtent, Map<Integer, List<int[]>> armies) {
+		List<Attribute> attributes = new ArrayList<>();
+		Iterator<?> iterator = start.getAttributes();
+		while (iterator.hasNext()) {
+			Attribute attribute = (Attribute) iterator.next();
+			switch (attribute.getName().getLocalPart()) {
+			case "xExtent":
+				attributes.add(events.createAttribute(attribute.getName(), Integer.toString(xExtent)));
+				break;
+			case "yExtent":
+				attributes.add(events.createAttribute(attribute.getName(), Integer.toString(yExtent)));
+				break;
+			case "nextTargetID":
+				attributes.add(events.createAttribute(attribute.getName(), Integer.toString(friendly + enemy)));
+				break;
+			default:
+				attributes.add(attribute);
+			}
+		}
+		return attributes.iterator();
+	}
+
+	/**
+	 * Writes a footman for each position, using the player's footman template.
+	 *
+	 * @return The next free unit ID
+	 */
+	private int writeUnits(XMLEventWriter writer, XMLEventFactory events, StreamingMapLoader.PlayerInfo player,
+			List<int[]> positions, int nextId) throws XMLStreamException {
+		if (positions == null) {
+			return nextId;
+		}
+
+		StreamingMapLoader.TemplateInfo footman = player.findTemplate("footman");
+		if (footman == null) {
+			throw new XMLStreamException("Player " + player.id + " has no footman template in " + templates);
+		}
+
+		for (int[] position : positions) {
+			writer.add(events.createCharacters("\n" + INDENT));
+			writer.add(events.createStartElement(new QName("unit"), null, null));
+			writeField(writer, events, "ID", nextId++);
+			writeField(writer, events, "currentHealth", footman.baseHealth);
+			writeField(writer, events, "xPosition", position[0]);
+			writeField(writer, events, "yPosition", position[1]);
+			writeField(writer, events, "templateID", footman.id);
+			writeField(writer, events, "cargoAmount", 0);
+			writeField(writer, events, "progressAmount", 0);
+			writer.add(events.createCharacters("\n" + INDENT));
+			writer.add(events.createEndElement(new QName("unit"), null));
+		}
+		return nextId;
+	}
+
+	private static void writeField(XMLEventWriter writer, XMLEventFactory events, String name, int value)
+			throws XMLStreamException {
+		writer.add(events.createCharacters("\n" + INDENT + "    "));
+		writer.add(events.createStartElement(new QName(name), null, null));
+		writer.add(events.createCharacters(Integer.toString(value)));
+		writer.add(events.createEndElement(new QName(name), null));
+	}
+
+	/**
+	 * Copies the template configuration, pointing it at the generated map.
+	 */
+	private void writeConfig(File mapFile, File configFile) throws IOException {
+		String text = new String(Files.readAllBytes(config.toPath()), StandardCharsets.UTF_8);
+		text = text.replaceFirst("<Map>[^<]*</Map>", Matcher.quoteReplacement("<Map>" + mapFile.getPath() + "</Map>"));
+		Files.write(configFile.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				System.err.println("Warning! Ignoring malformed argument " + arg);
+				continue;
+			}
+			options.put(arg.substring(0, split).trim(), arg.substring(split + 1).trim());
+		}
+
+		new ScenarioGenerator(options).generate();
+	}
+}
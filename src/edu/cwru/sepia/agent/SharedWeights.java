@@ -0,0 +1,382 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * A weight vector backed by a memory-mapped file so that several SEPIA
+ * processes on the same machine can train one model together.
+ *
+ * File layout (native byte order):
+ *
+ * 0   int    magic, written last when the file is initialized
+ * 4   int    number of weights
+ * 8   long   number of updates finished, used as the version
+ * 16  long   update sequence of each worker slot, MAX_WORKERS of them
+ * 528 double weights...
+ *
+ * Updates are lock-free: every weight is changed with a compare-and-set
+ * loop, so concurrent updates from different workers add up instead of
+ * overwriting each other. Individual reads see whatever has been written so
+ * far, which is fine for learning.
+ *
+ * Every worker owns a slot whose sequence is odd while it is in the middle
+ * of an update. snapshot() gives a consistent copy by only accepting a view
+ * where every sequence was even and unchanged before and after the copy.
+ *
+ * File locks are never taken on the update path. An exclusive attach lock
+ * is held while a worker maps the file, to decide who initializes it, and
+ * each worker holds an exclusive lock on its slot until it closes or dies.
+ * A worker killed in the middle of an update leaves its sequence odd. The
+ * operating system drops the dead worker's slot lock, so whoever finds the
+ * slot odd and can take its lock knows the owner is gone and ends the
+ * sequence. A live worker that is merely slow keeps its lock and is waited
+ * for instead.
+ *
+ * Only one SharedWeights per file may be open in a JVM.
+ */
+public class SharedWeights implements Closeable {
+
+	/**
+	 * Most workers that can be attached to one file at the same time.
+	 */
+	public static final int MAX_WORKERS = 64;
+
+	private static final int MAGIC = 0x524c5732;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int SIZE_OFFSET = 4;
+	private static final int VERSION_OFFSET = 8;
+	private static final int SLOTS_OFFSET = 16;
+	private static final int WEIGHTS_OFFSET = SLOTS_OFFSET + 8 * MAX_WORKERS;
+
+	/**
+	 * How long snapshot() keeps retrying while other workers are busy
+	 * updating before giving up.
+	 */
+	private static final long SNAPSHOT_NANOS = 1_000_000_000L;
+
+	/**
+	 * Lock regions past the end of the mapped data, the slot locks following
+	 * the attach and snapshot locks.
+	 */
+	private static final long ATTACH_LOCK = 1L << 40;
+	private static final long SNAPSHOT_LOCK = ATTACH_LOCK + 1;
+	private static final long SLOT_LOCK = ATTACH_LOCK + 2;
+
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle DOUBLES = MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.nativeOrder());
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int size;
+	private final int slot;
+	private final FileLock slotLock;
+
+	/**
+	 * Sequence of this worker's slot. Nobody else changes it while the slot
+	 * lock is held.
+	 */
+	private long sequence;
+
+	private SharedWeights(FileChannel channel, MappedByteBuffer buffer, int size, int slot, FileLock slotLock) {
+		this.channel = channel;
+		this.buffer = buffer;
+		this.size = size;
+		this.slot = slot;
+		this.slotLock = slotLock;
+		this.sequence = (long) LONGS.getVolatile(buffer, slotOffset(slot));
+	}
+
+	/**
+	 * Maps the given file, initializing it with the given weights if no other
+	 * worker has done so yet. Otherwise the weights already in the file are
+	 * kept and the given ones are ignored.
+	 *
+	 * @param path File shared by all workers
+	 * @param initial Weights to start from if the file is new
+	 * @return
+	 * @throws IOException if the file cannot be mapped, holds a different number of weights or has no free slot
+	 */
+	public static SharedWeights open(File path, double[] initial) throws IOException {
+		path.getAbsoluteFile().getParentFile().mkdirs();
+		FileChannel channel = FileChannel.open(path.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			FileLock attach = channel.lock(ATTACH_LOCK, 1, false);
+			try {
+				return attach(channel, initial);
+			} finally {
+				attach.release();
+			}
+		} catch (OverlappingFileLockException ex) {
+			channel.close();
+			throw new IOException("Shared weights file is already open in this JVM", ex);
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Maps and, if needed, initializes the file, then claims a free slot.
+	 * Must be called with the attach lock held.
+	 */
+	private static SharedWeights attach(FileChannel channel, double[] initial) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, WEIGHTS_OFFSET + 8L * initial.length);
+
+		if ((int) INTS.getVolatile(buffer, MAGIC_OFFSET) != MAGIC) {
+			INTS.setVolatile(buffer, SIZE_OFFSET, initial.length);
+			LONGS.setVolatile(buffer, VERSION_OFFSET, 0L);
+			for (int i = 0; i < MAX_WORKERS; i++) {
+				LONGS.setVolatile(buffer, slotOffset(i), 0L);
+			}
+			for (int i = 0; i < initial.length; i++) {
+				DOUBLES.setVolatile(buffer, WEIGHTS_OFFSET + 8 * i, initial[i]);
+			}
+			INTS.setVolatile(buffer, MAGIC_OFFSET, MAGIC);
+			buffer.force();
+		} else if ((int) INTS.getVolatile(buffer, SIZE_OFFSET) != initial.length) {
+			throw new IOException("Shared weights file holds " + INTS.getVolatile(buffer, SIZE_OFFSET)
+					+ " weights, expected " + initial.length);
+		}
+
+		for (int i = 0; i < MAX_WORKERS; i++) {
+			FileLock slotLock = channel.tryLock(SLOT_LOCK + i, 1, false);
+			if (slotLock != null) {
+				endDeadUpdate(buffer, i);
+				return new SharedWeights(channel, buffer, initial.length, i, slotLock);
+			}
+		}
+		throw new IOException("All " + MAX_WORKERS + " shared weight slots are in use");
+	}
+
+	private static int slotOffset(int slot) {
+		return SLOTS_OFFSET + 8 * slot;
+	}
+
+	/**
+	 * Ends an update a dead worker left unfinished in the given slot. Must be
+	 * called with the slot's lock held.
+	 */
+	private static void endDeadUpdate(MappedByteBuffer buffer, int slot) {
+		long sequence = (long) LONGS.getVolatile(buffer, slotOffset(slot));
+		if ((sequence & 1) != 0) {
+			LONGS.setVolatile(buffer, slotOffset(slot), sequence + 1);
+			System.err.println("Recovered an unfinished shared weight update from a dead worker.");
+		}
+	}
+
+	/**
+	 * Returns the current weights without waiting for in-flight updates. Each
+	 * weight is read atomically, but the vector as a whole may mix versions.
+	 *
+	 * @return
+	 */
+	public double[] read() {
+		double[] weights = new double[size];
+		for (int i = 0; i < size; i++) {
+			weights[i] = (double) DOUBLES.getVolatile(buffer, WEIGHTS_OFFSET + 8 * i);
+		}
+		return weights;
+	}
+
+	/**
+	 * Atomically adds delta to the shared weights, one weight at a time, and
+	 * bumps the version once all of them are applied.
+	 *
+	 * @param delta Change to apply to each weight
+	 */
+	public void add(double[] delta) {
+		LONGS.setVolatile(buffer, slotOffset(slot), ++sequence);
+		try {
+			for (int i = 0; i < size; i++) {
+				if (delta[i] == 0.0) {
+					continue;
+				}
+				int offset = WEIGHTS_OFFSET + 8 * i;
+				double current;
+				do {
+					current = (double) DOUBLES.getVolatile(buffer, offset);
+				} while (!DOUBLES.compareAndSet(buffer, offset, current, current + delta[i]));
+			}
+			LONGS.getAndAdd(buffer, VERSION_OFFSET, 1L);
+		} finally {
+			LONGS.setVolatile(buffer, slotOffset(slot), ++sequence);
+		}
+	}
+
+	/**
+	 * Number of updates that have been fully applied.
+	 *
+	 * @return
+	 */
+	public long version() {
+		return (long) LONGS.getVolatile(buffer, VERSION_OFFSET);
+	}
+
+	/**
+	 * Copies a consistent view of the weights, one that no update was applied
+	 * to while it was being read.
+	 *
+	 * @param into Array of at least size() weights to copy into
+	 * @return The version of the copied weights, or -1 if live workers kept an
+	 *         update in flight for too long
+	 */
+	public long snapshot(double[] into) {
+		long[] sequences = new long[MAX_WORKERS];
+		long start = System.nanoTime();
+
+		do {
+			if (!readSequences(sequences)) {
+				// an update is in flight, let it finish
+				Thread.yield();
+				continue;
+			}
+
+			long version = (long) LONGS.getVolatile(buffer, VERSION_OFFSET);
+			for (int i = 0; i < size; i++) {
+				into[i] = (double) DOUBLES.getVolatile(buffer, WEIGHTS_OFFSET + 8 * i);
+			}
+
+			if (sequencesUnchanged(sequences)) {
+				return version;
+			}
+		} while (System.nanoTime() - start < SNAPSHOT_NANOS);
+		return -1;
+	}
+
+	/**
+	 * Reads the sequence of every slot, ending the updates of dead workers on
+	 * the way.
+	 *
+	 * @return Whether no live worker is in the middle of an update
+	 */
+	private boolean readSequences(long[] sequences) {
+		boolean settled = true;
+		for (int i = 0; i < MAX_WORKERS; i++) {
+			sequences[i] = (long) LONGS.getVolatile(buffer, slotOffset(i));
+			if ((sequences[i] & 1) == 0) {
+				continue;
+			}
+			if (i != slot && recoverSlot(i)) {
+				sequences[i] = (long) LONGS.getVolatile(buffer, slotOffset(i));
+			} else {
+				settled = false;
+			}
+		}
+		return settled;
+	}
+
+	private boolean sequencesUnchanged(long[] sequences) {
+		for (int i = 0; i < MAX_WORKERS; i++) {
+			if ((long) LONGS.getVolatile(buffer, slotOffset(i)) != sequences[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ends the update in another worker's slot if that worker is dead, which
+	 * is exactly when its slot lock is free.
+	 *
+	 * @return Whether the slot's owner was dead
+	 */
+	private boolean recoverSlot(int slot) {
+		try {
+			FileLock lock = channel.tryLock(SLOT_LOCK + slot, 1, false);
+			if (lock == null) {
+				return false;
+			}
+			try {
+				endDeadUpdate(buffer, slot);
+			} finally {
+				lock.release();
+			}
+			return true;
+		} catch (IOException | OverlappingFileLockException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a consistent snapshot to the given file in the format of
+	 * RLAgent.saveWeights, one weight per line, so loadWeights can read it
+	 * back. Its version goes to a .version file next to it.
+	 *
+	 * Both files are written next to their destination and moved into place
+	 * together under the snapshot lock, so snapshots from several workers to
+	 * the same path do not interleave.
+	 *
+	 * @param path
+	 */
+	public void writeSnapshot(File path) {
+		double[] weights = new double[size];
+		long version = snapshot(weights);
+		if (version < 0) {
+			System.err.println("Failed to snapshot shared weights. Another worker stayed in the middle of an update.");
+			return;
+		}
+
+		File target = path.getAbsoluteFile();
+		File versionFile = new File(target.getPath() + ".version");
+		target.getParentFile().mkdirs();
+
+		StringBuilder contents = new StringBuilder();
+		for (double weight : weights) {
+			contents.append(String.format(Locale.ROOT, "%f\n", weight));
+		}
+
+		try {
+			FileLock lock = channel.lock(SNAPSHOT_LOCK, 1, false);
+			try {
+				replace(target, contents.toString());
+				replace(versionFile, version + "\n");
+			} finally {
+				lock.release();
+			}
+		} catch(IOException ex) {
+			System.err.println("Failed to write shared weights snapshot. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the contents next to the target and moves them into place, so
+	 * readers never see a partly written file.
+	 */
+	private static void replace(File target, String contents) throws IOException {
+		File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp, false))) {
+			writer.write(contents);
+			writer.flush();
+		} catch (IOException ex) {
+			temp.delete();
+			throw ex;
+		}
+		Files.move(temp.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer.force();
+		slotLock.release();
+		channel.close();
+	}
+}
@@ -0,0 +1,213 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the parts of a SEPIA map that matter for combat scenarios (extents,
+ * units and unit templates) with a StAX cursor, so large generated maps can
+ * be inspected without building a DOM. Everything else in the file is
+ * skipped.
+ */
+public class StreamingMapLoader {
+
+	public static class UnitInfo {
+		public int id;
+		public int health;
+		public int x;
+		public int y;
+		public int templateId;
+	}
+
+	public static class TemplateInfo {
+		public int id;
+		public String type;
+		public String name;
+		public int baseHealth;
+	}
+
+	public static class PlayerInfo {
+		public int id;
+		public final List<UnitInfo> units = new ArrayList<>();
+		public final Map<Integer, TemplateInfo> templates = new LinkedHashMap<>();
+
+		/**
+		 * Finds the unit template with the given name, ignoring case.
+		 *
+		 * @param name
+		 * @return The template or null if the player has none by that name
+		 */
+		public TemplateInfo findTemplate(String name) {
+			for (TemplateInfo template : templates.values()) {
+				if (name.equalsIgnoreCase(template.name)) {
+					return template;
+				}
+			}
+			return null;
+		}
+	}
+
+	public static class MapInfo {
+		public int xExtent;
+		public int yExtent;
+		public int nextTargetId;
+		public final List<PlayerInfo> players = new ArrayList<>();
+
+		public PlayerInfo getPlayer(int id) {
+			for (PlayerInfo player : players) {
+				if (player.id == id) {
+					return player;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Parses the given map file.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException if the file cannot be read or is not a valid map
+	 */
+	public static MapInfo load(File path) throws IOException {
+		try (InputStream input = new BufferedInputStream(new FileInputStream(path))) {
+			return load(input);
+		}
+	}
+
+	public static MapInfo load(InputStream input) throws IOException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+
+		try {
+			XMLStreamReader reader = factory.createXMLStreamReader(input);
+			try {
+				return read(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException | NumberFormatException ex) {
+			throw new IOException("Invalid map. Reason: " + ex.getMessage(), ex);
+		}
+	}
+
+	private static MapInfo read(XMLStreamReader reader) throws XMLStreamException {
+		MapInfo map = new MapInfo();
+		PlayerInfo player = null;
+		UnitInfo unit = null;
+		TemplateInfo template = null;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				switch (reader.getLocalName()) {
+				case "player":
+					player = null;
+					break;
+				case "unit":
+					unit = null;
+					break;
+				case "template":
+					template = null;
+					break;
+				}
+				continue;
+			}
+			if (event != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+
+			String name = reader.getLocalName();
+			if (name.equals("state")) {
+				map.xExtent = intAttribute(reader, "xExtent");
+				map.yExtent = intAttribute(reader, "yExtent");
+				map.nextTargetId = intAttribute(reader, "nextTargetID");
+			} else if (name.equals("player")) {
+				player = new PlayerInfo();
+				map.players.add(player);
+			} else if (player == null) {
+				continue;
+			} else if (name.equals("unit")) {
+				unit = new UnitInfo();
+				player.units.add(unit);
+			} else if (name.equals("template")) {
+				template = new TemplateInfo();
+				template.type = reader.getAttributeValue("http://www.w3.org/2001/XMLSchema-instance", "type");
+			} else if (unit != null) {
+				readUnitField(reader, unit, name);
+			} else if (template != null) {
+				readTemplateField(reader, player, template, name);
+			} else if (name.equals("ID")) {
+				player.id = Integer.parseInt(reader.getElementText().trim());
+			}
+		}
+		return map;
+	}
+
+	private static void readUnitField(XMLStreamReader reader, UnitInfo unit, String name) throws XMLStreamException {
+		switch (name) {
+		case "ID":
+			unit.id = Integer.parseInt(reader.getElementText().trim());
+			break;
+		case "currentHealth":
+			unit.health = Integer.parseInt(reader.getElementText().trim());
+			break;
+		case "xPosition":
+			unit.x = Integer.parseInt(reader.getElementText().trim());
+			break;
+		case "yPosition":
+			unit.y = Integer.parseInt(reader.getElementText().trim());
+			break;
+		case "templateID":
+			unit.templateId = Integer.parseInt(reader.getElementText().trim());
+			break;
+		}
+	}
+
+	private static void readTemplateField(XMLStreamReader reader, PlayerInfo player, TemplateInfo template, String name)
+			throws XMLStreamException {
+		switch (name) {
+		case "ID":
+			// templates are keyed by ID, which always comes first
+			template.id = Integer.parseInt(reader.getElementText().trim());
+			player.templates.put(template.id, template);
+			break;
+		case "name":
+			template.name = reader.getElementText().trim();
+			break;
+		case "baseHealth":
+			template.baseHealth = Integer.parseInt(reader.getElementText().trim());
+			break;
+		}
+	}
+
+	private static int intAttribute(XMLStreamReader reader, String name) {
+		String value = reader.getAttributeValue(null, name);
+		return value == null ? 0 : Integer.parseInt(value);
+	}
+
+	/**
+	 * Prints a short description of each map given, along with how long it
+	 * took to load.
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String arg : args) {
+			long start = System.nanoTime();
+			MapInfo map = load(new File(arg));
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println(String.format("%s: %dx%d, loaded in %.2f ms", arg, map.xExtent, map.yExtent, elapsed / 1e6));
+			for (PlayerInfo player : map.players) {
+				System.out.println(String.format("  player %d: %d units, %d templates",
+						player.id, player.units.size(), player.templates.size()));
+			}
+		}
+	}
+}
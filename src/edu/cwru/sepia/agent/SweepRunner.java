@@ -0,0 +1,482 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a hyperparameter sweep over RLAgent. Every trial is its own SEPIA
+ * process in its own working directory, so trials never share weights,
+ * statics or output files, and as many trials run at once as there are
+ * cores.
+ *
+ * The sweep is described by a properties file, for example:
+ *
+ * mode=grid
+ * gamma=0.8,0.9,0.99
+ * learningRate=0.0001,0.001
+ * epsilon=0.01,0.02,0.05
+ * episodes=30000
+ * minEpisodes=1000
+ *
+ * In grid mode every combination of the listed values is tried. In random
+ * mode (mode=random, trials=N) each parameter is either a list to pick from,
+ * a range low:high sampled uniformly, or low:high:log sampled log-uniformly.
+ * Parameters that are left out keep the agent defaults.
+ *
+ * When minEpisodes is below episodes the sweep uses successive halving: all
+ * trials run for minEpisodes, the best 1/eta of them are rerun with eta times
+ * the budget, and so on until the survivors run for the full episodes. Reruns
+ * start from scratch with the same seed.
+ *
+ * Trials are ranked by metric, which is evaluationReward (the final test
+ * reward computed with the default reward shaping), winRate or finalReward
+ * (the final test reward under the trial's own shaping). finalReward is only
+ * comparable between trials when unitBonus, hpBonus and turnPenalty are not
+ * swept, so in that case evaluationReward is used instead.
+ *
+ * Other keys: eta (3), workers (available processors), seed, map
+ * (data/rl_5fv5f.xml), output (sweeps), classpath (this JVM's classpath),
+ * mainClass (edu.cwru.sepia.Main2), enemyClass (combatAgent) and
+ * trialTimeoutMinutes (720), after which a trial's process is killed.
+ *
+ * Results for every trial and rung are written to results.csv in the output
+ * directory and printed as a table at the end.
+ */
+public class SweepRunner {
+
+	/**
+	 * Names of the hyperparameters RLAgent accepts as name=value arguments.
+	 */
+	public static final List<String> PARAMETERS = Arrays.asList(
+			"gamma", "learningRate", "epsilon", "unitBonus", "hpBonus", "turnPenalty");
+
+	/**
+	 * Parameters that change how the agent's own reward is computed.
+	 */
+	public static final List<String> SHAPING_PARAMETERS = Arrays.asList("unitBonus", "hpBonus", "turnPenalty");
+
+	/**
+	 * Summary values trials can be ranked by.
+	 */
+	public static final List<String> METRICS = Arrays.asList("evaluationReward", "winRate", "finalReward");
+
+	/**
+	 * A single configuration of the agent and how it did in the last rung it
+	 * was run in.
+	 */
+	public static class Trial {
+		public final int id;
+		public final Map<String, String> parameters;
+		public final long seed;
+
+		public int rung = -1;
+		public int episodes = 0;
+		public double finalReward = Double.NaN;
+		public double evaluationReward = Double.NaN;
+		public double winRate = Double.NaN;
+		public double episodesPerSecond = Double.NaN;
+		public String status = "pending";
+
+		public Trial(int id, Map<String, String> parameters, long seed) {
+			this.id = id;
+			this.parameters = parameters;
+			this.seed = seed;
+		}
+
+		/**
+		 * The value of one of the METRICS, NaN if the trial did not report it.
+		 */
+		public double metric(String metric) {
+			switch (metric) {
+			case "evaluationReward":
+				return evaluationReward;
+			case "winRate":
+				return winRate;
+			case "finalReward":
+				return finalReward;
+			default:
+				throw new IllegalArgumentException("Unknown metric " + metric);
+			}
+		}
+
+		public double score(String metric) {
+			double value = metric(metric);
+			return Double.isNaN(value) ? Double.NEGATIVE_INFINITY : value;
+		}
+	}
+
+	private final Properties spec;
+	private final Random random;
+	private final int episodes;
+	private final int minEpisodes;
+	private final int eta;
+	private final int workers;
+	private final String metric;
+	private final File map;
+	private final File output;
+	private final String classpath;
+	private final String mainClass;
+	private final String enemyClass;
+	private final long trialTimeoutMinutes;
+	private final List<String> results = new ArrayList<>();
+
+	public SweepRunner(Properties spec) {
+		this.spec   = spec;
+		random      = new Random(Long.parseLong(spec.getProperty("seed", "0")));
+		episodes    = Integer.parseInt(spec.getProperty("episodes", "30000"));
+		minEpisodes = Math.min(episodes, Integer.parseInt(spec.getProperty("minEpisodes", Integer.toString(episodes))));
+		eta         = Math.max(2, Integer.parseInt(spec.getProperty("eta", "3")));
+		workers     = Integer.parseInt(spec.getProperty("workers",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		metric      = rankingMetric(spec);
+		map         = new File(spec.getProperty("map", "data/rl_5fv5f.xml")).getAbsoluteFile();
+		output      = new File(spec.getProperty("output", "sweeps")).getAbsoluteFile();
+		classpath   = absoluteClasspath(spec.getProperty("classpath", System.getProperty("java.class.path")));
+		mainClass   = spec.getProperty("mainClass", "edu.cwru.sepia.Main2");
+		enemyClass  = spec.getProperty("enemyClass", "combatAgent");
+		trialTimeoutMinutes = Long.parseLong(spec.getProperty("trialTimeoutMinutes", "720"));
+	}
+
+	/**
+	 * Picks the metric to rank trials by, refusing finalReward when the
+	 * reward shaping itself is being swept.
+	 *
+	 * @throws IllegalArgumentException if the metric is not one of METRICS
+	 */
+	private static String rankingMetric(Properties spec) {
+		String metric = spec.getProperty("metric", "evaluationReward").trim();
+		if (!METRICS.contains(metric)) {
+			throw new IllegalArgumentException("Unknown metric " + metric + ", expected one of " + METRICS);
+		}
+		if (metric.equals("finalReward")
+				&& SHAPING_PARAMETERS.stream().anyMatch(name -> spec.getProperty(name) != null)) {
+			System.err.println("Warning! finalReward depends on the swept reward shaping. Ranking by evaluationReward instead.");
+			return "evaluationReward";
+		}
+		return metric;
+	}
+
+	/**
+	 * Builds the list of trials described by the spec, either every point of
+	 * the grid or the requested number of random samples.
+	 *
+	 * @return
+	 */
+	public List<Trial> generateTrials() {
+		List<String> names = PARAMETERS.stream()
+				.filter(name -> spec.getProperty(name) != null)
+				.collect(Collectors.toList());
+		List<Trial> trials = new ArrayList<>();
+
+		if (spec.getProperty("mode", "grid").equals("random")) {
+			int count = Integer.parseInt(spec.getProperty("trials", "10"));
+			for (int i = 0; i < count; i++) {
+				Map<String, String> parameters = new LinkedHashMap<>();
+				for (String name : names) {
+					parameters.put(name, sample(spec.getProperty(name)));
+				}
+				trials.add(new Trial(i, parameters, random.nextLong()));
+			}
+		} else {
+			List<List<String>> values = names.stream()
+					.map(name -> Arrays.stream(spec.getProperty(name).split(","))
+							.map(String::trim)
+							.collect(Collectors.toList()))
+					.collect(Collectors.toList());
+			for (List<String> point : CartesianProduct.iterate(values)) {
+				Map<String, String> parameters = new LinkedHashMap<>();
+				for (int i = 0; i < names.size(); i++) {
+					parameters.put(names.get(i), point.get(i));
+				}
+				trials.add(new Trial(trials.size(), parameters, random.nextLong()));
+			}
+		}
+		return trials;
+	}
+
+	/**
+	 * Draws a single value for a random search parameter.
+	 *
+	 * @param value Either a comma separated list, low:high or low:high:log
+	 * @return
+	 */
+	private String sample(String value) {
+		String[] range = value.split(":");
+		if (range.length < 2) {
+			String[] choices = value.split(",");
+			return choices[random.nextInt(choices.length)].trim();
+		}
+
+		double low = Double.parseDouble(range[0].trim());
+		double high = Double.parseDouble(range[1].trim());
+		if (range.length > 2 && range[2].trim().equals("log")) {
+			return Double.toString(Math.exp(Math.log(low) + random.nextDouble() * (Math.log(high) - Math.log(low))));
+		}
+		return Double.toString(low + random.nextDouble() * (high - low));
+	}
+
+	/**
+	 * Runs every rung of the sweep and returns the surviving trials, best
+	 * first.
+	 *
+	 * @param trials
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public List<Trial> run(List<Trial> trials) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<Trial> alive = new ArrayList<>(trials);
+		try {
+			int budget = minEpisodes;
+			for (int rung = 0; ; rung++) {
+				System.out.println(String.format("Rung %d: %d trials for %d episodes", rung, alive.size(), budget));
+				runRung(pool, alive, rung, budget);
+				alive.sort(Comparator.comparingDouble((Trial trial) -> trial.score(metric)).reversed());
+
+				if (budget >= episodes) {
+					break;
+				}
+				alive = new ArrayList<>(alive.subList(0, Math.max(1, alive.size() / eta)));
+				budget = (int) Math.min((long) budget * eta, episodes);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return alive;
+	}
+
+	/**
+	 * Runs the given trials concurrently for a fixed number of episodes and
+	 * waits for all of them to finish.
+	 */
+	private void runRung(ExecutorService pool, List<Trial> trials, int rung, int budget) throws InterruptedException {
+		List<Future<?>> futures = new ArrayList<>();
+		for (Trial trial : trials) {
+			futures.add(pool.submit(() -> runTrial(trial, rung, budget)));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException ex) {
+				System.err.println("Trial failed. Reason: " + ex.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Runs one trial as a separate SEPIA process and reads back the summary
+	 * the agent writes when it finishes.
+	 */
+	private void runTrial(Trial trial, int rung, int budget) {
+		File directory = new File(output, String.format("trial-%d/rung-%d", trial.id, rung));
+		directory.mkdirs();
+		// a summary left over from an earlier sweep into the same output would pass for this run's
+		File summaryFile = new File(directory, "agent_weights/summary.txt");
+		summaryFile.delete();
+
+		trial.rung = rung;
+		trial.episodes = budget;
+		trial.finalReward = Double.NaN;
+		trial.evaluationReward = Double.NaN;
+		trial.winRate = Double.NaN;
+		trial.episodesPerSecond = Double.NaN;
+
+		Process process = null;
+		try {
+			File config = new File(directory, "config.xml");
+			writeConfig(config, trial, budget);
+
+			File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+			process = new ProcessBuilder(java.getPath(), "-cp", classpath, mainClass, config.getPath())
+					.directory(directory)
+					.redirectErrorStream(true)
+					.redirectOutput(new File(directory, "output.log"))
+					.start();
+			if (!process.waitFor(trialTimeoutMinutes, TimeUnit.MINUTES)) {
+				throw new TimeoutException("timed out after " + trialTimeoutMinutes + " minutes");
+			}
+			int exitCode = process.exitValue();
+
+			Properties summary = new Properties();
+			if (summaryFile.exists()) {
+				try (Reader reader = new FileReader(summaryFile)) {
+					summary.load(reader);
+				}
+				// parse everything before recording anything, so a bad summary leaves no partial result
+				double finalReward = Double.parseDouble(summary.getProperty("finalReward", "NaN"));
+				double evaluationReward = Double.parseDouble(summary.getProperty("evaluationReward", "NaN"));
+				double winRate = Double.parseDouble(summary.getProperty("winRate", "NaN"));
+				double episodesPerSecond = Double.parseDouble(summary.getProperty("episodesPerSecond", "NaN"));
+				trial.finalReward = finalReward;
+				trial.evaluationReward = evaluationReward;
+				trial.winRate = winRate;
+				trial.episodesPerSecond = episodesPerSecond;
+				trial.status = "done";
+			} else {
+				trial.status = "failed (exit " + exitCode + ")";
+			}
+		} catch (IOException | TimeoutException | RuntimeException ex) {
+			trial.status = "failed (" + ex.getMessage() + ")";
+		} catch (InterruptedException ex) {
+			trial.status = "interrupted";
+			Thread.currentThread().interrupt();
+		} finally {
+			if (process != null && process.isAlive()) {
+				process.destroyForcibly();
+			}
+		}
+
+		synchronized (results) {
+			results.add(formatRow(trial));
+		}
+		System.out.println(String.format("Trial %d rung %d: %s", trial.id, rung, trial.status));
+	}
+
+	/**
+	 * Writes a SEPIA configuration for a trial, mirroring data/5fv5fConfig.xml
+	 * with the trial's episode budget and hyperparameters.
+	 */
+	private void writeConfig(File config, Trial trial, int budget) throws IOException {
+		StringBuilder arguments = new StringBuilder();
+		for (Map.Entry<String, String> parameter : trial.parameters.entrySet()) {
+			arguments.append(String.format("\t\t\t<Argument>%s=%s</Argument>\n", parameter.getKey(), parameter.getValue()));
+		}
+		arguments.append(String.format("\t\t\t<Argument>seed=%d</Argument>\n", trial.seed));
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(config, false))) {
+			writer.write("<Configuration>\n");
+			writer.write(String.format("\t<Map>%s</Map>\n", map.getPath()));
+			writer.write("\t<Player Id=\"0\">\n");
+			writer.write("\t\t<AgentClass>\n");
+			writer.write("\t\t\t<ClassName>edu.cwru.sepia.agent.RLAgent</ClassName>\n");
+			writer.write(String.format("\t\t\t<Argument>%d</Argument>\n", budget));
+			writer.write("\t\t\t<Argument>false</Argument>\n");
+			writer.write(arguments.toString());
+			writer.write("\t\t</AgentClass>\n");
+			writer.write("\t</Player>\n");
+			writer.write("\t<Player Id=\"1\">\n");
+			writer.write("\t\t<AgentClass>\n");
+			writer.write(String.format("\t\t\t<ClassName>%s</ClassName>\n", enemyClass));
+			writer.write("\t\t\t<Argument>false</Argument>\n");
+			writer.write("\t\t</AgentClass>\n");
+			writer.write("\t</Player>\n");
+			writer.write("\t<ModelParameters>\n");
+			writer.write("\t\t<Conquest>true</Conquest>\n");
+			writer.write("\t\t<Midas>false</Midas>\n");
+			writer.write("\t\t<ManifestDestiny>false</ManifestDestiny>\n");
+			writer.write("\t\t<TimeLimit>100000</TimeLimit>\n");
+			writer.write("\t</ModelParameters>\n");
+			writer.write("\t<Runner>\n");
+			writer.write("\t\t<RunnerClass>edu.cwru.sepia.experiment.SimpleModelEpisodicRunner</RunnerClass>\n");
+			writer.write(String.format("\t\t<Parameter Name=\"experiment.NumEpisodes\" Value=\"%d\"/>\n", budget));
+			writer.write("\t\t<Parameter Name=\"experiment.EpisodesPerSave\" Value=\"1\"/>\n");
+			writer.write("\t\t<Parameter Name=\"experiment.SaveAgents\" Value=\"false\"/>\n");
+			writer.write("\t\t<Parameter Name=\"environment.model.class\" Value=\"edu.cwru.sepia.environment.model.BestEffortModel\" />\n");
+			writer.write("\t</Runner>\n");
+			writer.write("</Configuration>\n");
+		}
+	}
+
+	private String formatRow(Trial trial) {
+		List<String> columns = new ArrayList<>();
+		columns.add(Integer.toString(trial.id));
+		columns.add(Integer.toString(trial.rung));
+		columns.add(Integer.toString(trial.episodes));
+		for (String name : PARAMETERS) {
+			columns.add(trial.parameters.getOrDefault(name, ""));
+		}
+		columns.add(Long.toString(trial.seed));
+		columns.add(String.format(Locale.ROOT, "%f", trial.finalReward));
+		columns.add(String.format(Locale.ROOT, "%f", trial.evaluationReward));
+		columns.add(String.format(Locale.ROOT, "%f", trial.winRate));
+		columns.add(String.format(Locale.ROOT, "%f", trial.episodesPerSecond));
+		columns.add(trial.status.replace(',', ';'));
+		return String.join(", ", columns);
+	}
+
+	/**
+	 * Writes every trial/rung result to results.csv in the output directory.
+	 */
+	public void outputCSV() {
+		File path = new File(output, "results.csv");
+		path.getParentFile().mkdirs();
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(path, false))) {
+			writer.write("trial, rung, episodes, " + String.join(", ", PARAMETERS)
+					+ ", seed, finalReward, evaluationReward, winRate, episodesPerSecond, status\n");
+			synchronized (results) {
+				for (String row : results) {
+					writer.write(row + "\n");
+				}
+			}
+			writer.flush();
+		} catch(IOException ex) {
+			System.err.println("Failed to write results to file. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Prints the final ranking of the trials that made it to the last rung.
+	 *
+	 * @param trials
+	 */
+	public void printResults(List<Trial> trials) {
+		System.out.println("");
+		System.out.println(String.format("%-7s %-10s %-16s %-10s %-12s  %s",
+				"Trial", "Episodes", metric, "Win rate", "Episodes/s", "Parameters"));
+		System.out.println("------- ---------- ---------------- ---------- ------------  ----------");
+		for (Trial trial : trials) {
+			System.out.println(String.format("%-7d %-10d %-16.2f %-10.3f %-12.2f  %s",
+					trial.id, trial.episodes, trial.metric(metric), trial.winRate, trial.episodesPerSecond,
+					trial.parameters));
+		}
+		System.out.println("");
+	}
+
+	/**
+	 * Resolves each classpath entry against the current directory, since the
+	 * trials run from their own directories.
+	 */
+	private static String absoluteClasspath(String classpath) {
+		return Arrays.stream(classpath.split(File.pathSeparator))
+				.map(entry -> new File(entry).getAbsolutePath())
+				.collect(Collectors.joining(File.pathSeparator));
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: SweepRunner <sweep.properties>");
+			System.exit(1);
+		}
+
+		Properties spec = new Properties();
+		try (Reader reader = new FileReader(args[0])) {
+			spec.load(reader);
+		}
+
+		SweepRunner runner;
+		try {
+			runner = new SweepRunner(spec);
+		} catch (IllegalArgumentException ex) {
+			System.err.println("Invalid sweep. " + ex.getMessage());
+			System.exit(1);
+			return;
+		}
+		List<Trial> trials = runner.generateTrials();
+		if (trials.isEmpty()) {
+			System.err.println("The sweep does not contain any trials.");
+			System.exit(1);
+		}
+
+		List<Trial> best = runner.run(trials);
+		runner.outputCSV();
+		runner.printResults(best);
+	}
+}
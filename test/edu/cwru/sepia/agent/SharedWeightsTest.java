@@ -0,0 +1,134 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Kills a worker in the middle of SharedWeights.add while other workers keep
+ * updating, and checks that snapshots still succeed promptly and that the
+ * killed worker's slot is recovered.
+ *
+ * Every worker is its own JVM, since slot locks belong to processes. Run
+ * with src and test compiled onto the classpath:
+ *
+ * java -cp <classes> edu.cwru.sepia.agent.SharedWeightsTest
+ *
+ * Fails with an AssertionError if a check does not hold.
+ */
+public class SharedWeightsTest {
+
+	/**
+	 * Large enough that a full update takes many milliseconds, so the kill
+	 * lands in the middle of it.
+	 */
+	private static final int SIZE = 1_000_000;
+	private static final int ADDERS = 2;
+	private static final int SNAPSHOTS = 20;
+	private static final long SNAPSHOT_LIMIT_NANOS = 250_000_000L;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2) {
+			runWorker(args[0], new File(args[1]));
+			return;
+		}
+
+		File directory = Files.createTempDirectory("shared-weights").toFile();
+		File path = new File(directory, "weights.bin");
+		List<Process> workers = new ArrayList<>();
+
+		// attach first, so the killed worker's slot is not handed to us on attach
+		try (SharedWeights weights = SharedWeights.open(path, new double[SIZE])) {
+			for (int i = 0; i < ADDERS; i++) {
+				workers.add(startWorker("adder", path));
+			}
+
+			// the victim reports attaching right before it starts its update
+			Process victim = startWorker("victim", path);
+			workers.add(victim);
+			Thread.sleep(5);
+			victim.destroyForcibly().waitFor();
+
+			double[] current = weights.read();
+			check(current[1] == 1.0 && current[SIZE - 1] == 0.0,
+					"the victim was killed in the middle of its update");
+
+			double[] into = new double[SIZE];
+			long lastVersion = -1;
+			for (int i = 0; i < SNAPSHOTS; i++) {
+				long start = System.nanoTime();
+				long version = weights.snapshot(into);
+				long elapsed = System.nanoTime() - start;
+
+				check(version >= 0, "snapshot " + i + " succeeded");
+				check(elapsed < SNAPSHOT_LIMIT_NANOS, "snapshot " + i + " took " + elapsed / 1000000 + " ms");
+				check(version >= lastVersion, "snapshot versions do not go backwards");
+				lastVersion = version;
+				Thread.sleep(10);
+			}
+			check(weights.version() > 0, "the other workers kept updating");
+		} finally {
+			for (Process worker : workers) {
+				worker.destroyForcibly().waitFor();
+			}
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+
+		System.out.println("SharedWeightsTest passed.");
+	}
+
+	/**
+	 * Starts a worker JVM and waits until it has attached.
+	 */
+	private static Process startWorker(String role, File path) throws IOException {
+		File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+		Process process = new ProcessBuilder(java.getPath(), "-cp", System.getProperty("java.class.path"),
+				SharedWeightsTest.class.getName(), role, path.getPath())
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		if (!"attached".equals(reader.readLine())) {
+			process.destroyForcibly();
+			throw new IOException("Worker " + role + " failed to attach");
+		}
+		return process;
+	}
+
+	/**
+	 * An adder keeps bumping the first weight until it is killed. The victim
+	 * adds one to every weight once and is killed before it finishes.
+	 */
+	private static void runWorker(String role, File path) throws Exception {
+		SharedWeights weights = SharedWeights.open(path, new double[SIZE]);
+		double[] delta = new double[SIZE];
+		if (role.equals("victim")) {
+			Arrays.fill(delta, 1.0);
+		} else {
+			delta[0] = 1.0;
+		}
+		System.out.println("attached");
+		System.out.flush();
+
+		if (role.equals("victim")) {
+			weights.add(delta);
+			// only reached if the kill came too late, which fails the partial update check
+			Thread.sleep(Long.MAX_VALUE);
+		}
+		while (true) {
+			weights.add(delta);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError(description);
+		}
+	}
+}